@@ -0,0 +1,366 @@
+package ru.ifmo.ctddev.kopeliovich.implementor;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persistent content-addressed cache of generated <tt>.jar</tt> files.
+ * <p>
+ * Every entry is stored as <tt>$dir/&lt;key&gt;.jar</tt>, where key is a SHA-256 of the generated
+ * source code and the version of JDK which compiles it. New entries are written to a temporary file
+ * and atomically renamed, so readers never see a partial jar. Entries are hard-linked into builds, so their
+ * own timestamps are never changed: time of the last use is kept as modification time of an empty
+ * <tt>$dir/&lt;key&gt;.used</tt> file. The least recently used entries are evicted when total size of the cache
+ * exceeds <code>maxSize</code>, and temporary files left by crashed processes are removed after
+ * {@value #TMP_AGE_MS} ms. Eviction is guarded by a {@link FileLock} on <tt>$dir/.lock</tt>,
+ * so cache directory can be shared by several processes of the same user.
+ * <p>
+ * Cached jars are linked into builds, so the directory is created accessible only by its owner,
+ * and cache is not used if the directory belongs to another user or is writable by group or others.
+ *
+ * @author Kopeliovich Anna(annnufan@gmail.com)
+ */
+public class ImplCache {
+    /**
+     * System property with cache directory.
+     */
+    public static final String DIR_PROPERTY = "implementor.cache.dir";
+    /**
+     * System property with maximal cache size in bytes. Zero disables the cache.
+     */
+    public static final String SIZE_PROPERTY = "implementor.cache.size";
+    /**
+     * Default maximal cache size: 64 MiB.
+     */
+    private static final long DEFAULT_SIZE = 64L << 20;
+    /**
+     * Suffix of cache entries.
+     */
+    private static final String SUFFIX = ".jar";
+    /**
+     * Suffix of files which keep time of the last use of entries.
+     */
+    private static final String USED_SUFFIX = ".used";
+    /**
+     * Suffix of temporary files.
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+    /**
+     * Age after which temporary file is considered abandoned: one hour.
+     */
+    private static final long TMP_AGE_MS = 60 * 60 * 1000;
+    /**
+     * Lock for threads of this JVM, because {@link FileLock} is held on behalf of the whole process.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Directory of the cache.
+     */
+    private final Path dir;
+    /**
+     * Maximal total size of entries in bytes.
+     */
+    private final long maxSize;
+    /**
+     * Result of {@link #checkDirectory()}, <code>null</code> until the first use of the cache.
+     */
+    private Boolean usable;
+
+    /**
+     * Create cache in <code>dir</code> which holds at most <code>maxSize</code> bytes.
+     *
+     * @param dir     is {@link Path} of cache directory, it will be created on the first use if necessary.
+     * @param maxSize is maximal total size of cached jars in bytes.
+     */
+    public ImplCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Create cache configured by system properties {@value #DIR_PROPERTY} and {@value #SIZE_PROPERTY}.
+     * By default cache is placed to <tt>.cache/implementor</tt> in home directory of the user.
+     *
+     * @return configured cache or <code>null</code> if cache is disabled.
+     */
+    public static ImplCache fromProperties() {
+        try {
+            long size = Long.parseLong(System.getProperty(SIZE_PROPERTY, Long.toString(DEFAULT_SIZE)));
+            if (size <= 0) {
+                return null;
+            }
+            String dir = System.getProperty(DIR_PROPERTY);
+            Path path = dir != null ? Paths.get(dir) : Paths.get(System.getProperty("user.home"), ".cache", "implementor");
+            return new ImplCache(path, size);
+        } catch (RuntimeException e) {
+            System.err.println("Implementor cache is disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Compute key of cache entry. Key depends on <code>signature</code> and version of running JDK,
+     * which compiles implementation.
+     *
+     * @param signature is {@link String} which fully describes generated class, e.g. its source code.
+     * @return hexadecimal SHA-256 of <code>signature</code> and JDK version.
+     */
+    public String key(String signature) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(System.getProperty("java.version").getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(signature.getBytes(StandardCharsets.UTF_8));
+            StringBuilder b = new StringBuilder();
+            for (byte x : digest.digest()) {
+                b.append(String.format("%02x", x));
+            }
+            return b.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * Copy cached jar with given <code>key</code> to <code>target</code>.
+     * Hard link is tried first and the file is copied if link can't be created.
+     *
+     * @param key    is key of entry from {@link #key(String)}.
+     * @param target is {@link Path} of resulting jar.
+     * @return <code>true</code> if entry was found and copied.
+     */
+    public boolean fetch(String key, Path target) {
+        Path entry = dir.resolve(key + SUFFIX);
+        if (!isUsable() || !Files.isRegularFile(entry)) {
+            return false;
+        }
+        try {
+            touch(key);
+            Path parent = target.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, entry);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            // Entry was evicted by another process or target is not writable, regenerate it
+            return false;
+        }
+    }
+
+    /**
+     * Put <code>jar</code> to the cache with given <code>key</code> and evict old entries if necessary.
+     * Failures are reported to {@link System#err} and do not affect the caller.
+     *
+     * @param key is key of entry from {@link #key(String)}.
+     * @param jar is {@link Path} of jar to store.
+     */
+    public void store(String key, Path jar) {
+        if (!isUsable()) {
+            return;
+        }
+        Path tmp = null;
+        try {
+            tmp = JarWriter.newTempFile(dir, key);
+            Files.copy(jar, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Path entry = dir.resolve(key + SUFFIX);
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+            touch(key);
+            evict();
+        } catch (IOException e) {
+            System.err.println("Can't store jar to cache " + dir + ": " + e.getMessage());
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Set time of the last use of entry with given <code>key</code> to now.
+     *
+     * @param key is key of entry.
+     * @throws IOException if time can't be updated.
+     */
+    private void touch(String key) throws IOException {
+        Path used = dir.resolve(key + USED_SUFFIX);
+        if (!Files.exists(used)) {
+            try {
+                Files.createFile(used);
+            } catch (FileAlreadyExistsException ignored) {
+                // Created by another process
+            }
+        }
+        Files.setLastModifiedTime(used, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Remove least recently used entries until total size is not greater than <code>maxSize</code>.
+     *
+     * @throws IOException if cache directory can't be read or locked.
+     */
+    private void evict() throws IOException {
+        synchronized (LOCK) {
+            try (FileChannel channel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    evictLocked();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove least recently used entries, while {@link FileLock} on the cache directory is held.
+     *
+     * @throws IOException if cache directory can't be read.
+     */
+    private void evictLocked() throws IOException {
+        long expired = System.currentTimeMillis() - TMP_AGE_MS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + TMP_SUFFIX)) {
+            for (Path tmp : stream) {
+                if (modified(tmp) < expired) {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + USED_SUFFIX)) {
+            for (Path used : stream) {
+                if (!Files.exists(entryOf(used, USED_SUFFIX, SUFFIX))) {
+                    Files.deleteIfExists(used);
+                }
+            }
+        }
+        List<Path> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+                total += Files.size(entry);
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+        entries.sort(Comparator.comparing(entry -> modified(entryOf(entry, SUFFIX, USED_SUFFIX))));
+        for (Path entry : entries) {
+            if (total <= maxSize) {
+                break;
+            }
+            long size = Files.size(entry);
+            if (Files.deleteIfExists(entry)) {
+                total -= size;
+            }
+            Files.deleteIfExists(entryOf(entry, SUFFIX, USED_SUFFIX));
+        }
+    }
+
+    /**
+     * Check cache directory once, see {@link #checkDirectory()}.
+     *
+     * @return <code>true</code> if cache can be used.
+     */
+    private synchronized boolean isUsable() {
+        if (usable == null) {
+            usable = checkDirectory();
+        }
+        return usable;
+    }
+
+    /**
+     * Create cache directory accessible only by current user, or check that existing one belongs to
+     * current user and can't be written by anybody else. Problems are reported to {@link System#err}.
+     *
+     * @return <code>true</code> if cache directory is safe to use.
+     */
+    private boolean checkDirectory() {
+        try {
+            boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (posix) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(dir);
+            }
+            UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!Files.getOwner(dir).equals(user)) {
+                System.err.println("Implementor cache is disabled: " + dir + " belongs to " + Files.getOwner(dir));
+                return false;
+            }
+            if (posix) {
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(dir);
+                if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                    System.err.println("Implementor cache is disabled: " + dir + " is writable by group or others");
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            System.err.println("Implementor cache is disabled: can't check " + dir + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Get file of the same entry with another suffix.
+     *
+     * @param file   is {@link Path} of file in the cache.
+     * @param suffix is suffix of <code>file</code>.
+     * @param other  is suffix of result.
+     * @return {@link Path} of file with the same key and <code>other</code> suffix.
+     */
+    private static Path entryOf(Path file, String suffix, String other) {
+        String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.length() - suffix.length()) + other);
+    }
+
+    /**
+     * Get modification time of file, e.g. time of last use of cache entry.
+     *
+     * @param file is {@link Path} of file.
+     * @return last modified time or zero if it can't be read.
+     */
+    private static long modified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
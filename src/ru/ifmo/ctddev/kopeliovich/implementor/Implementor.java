@@ -3,8 +3,6 @@ package ru.ifmo.ctddev.kopeliovich.implementor;
 import info.kgeorgiy.java.advanced.implementor.ImplerException;
 import info.kgeorgiy.java.advanced.implementor.JarImpler;
 
-import javax.tools.JavaCompiler;
-import javax.tools.ToolProvider;
 import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
@@ -16,10 +14,10 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.jar.JarOutputStream;
+import java.util.Map;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
 
 /**
  * Implemetor for token.
@@ -37,6 +35,44 @@ public class Implementor implements JarImpler {
      * name of new realisation
      */
     private String name, classPathName;
+    /**
+     * Package of new realisation, empty for the default package.
+     */
+    private String packageName;
+    /**
+     * Cache of generated jars, <code>null</code> if disabled.
+     */
+    private final ImplCache cache;
+    /**
+     * Writer of generated jars.
+     */
+    private final JarWriter jarWriter;
+
+    /**
+     * Create implementor with {@link ImplCache cache} configured by system properties.
+     * @see ImplCache#fromProperties()
+     */
+    public Implementor() {
+        this(ImplCache.fromProperties());
+    }
+
+    /**
+     * Create implementor with given <code>cache</code> of jars.
+     * @param cache is {@link ImplCache} for {@link #implementJar(Class, Path)} or <code>null</code> to disable caching.
+     */
+    public Implementor(ImplCache cache) {
+        this(cache, new JarWriter());
+    }
+
+    /**
+     * Create implementor with given <code>cache</code> and <code>jarWriter</code>.
+     * @param cache is {@link ImplCache} for {@link #implementJar(Class, Path)} or <code>null</code> to disable caching.
+     * @param jarWriter is {@link JarWriter} for {@link #implementJar(Class, Path)}.
+     */
+    public Implementor(ImplCache cache, JarWriter jarWriter) {
+        this.cache = cache;
+        this.jarWriter = jarWriter;
+    }
 
     /**
      * Generate String of default return value for <code>token</code>.
@@ -140,17 +176,10 @@ public class Implementor implements JarImpler {
      */
     @Override
     public void implement(Class<?> token, Path root) throws ImplerException {
-        if (token == null || root == null) {
+        if (root == null) {
             throw new ImplerException("Empty token or root.");
         }
-        if (token.isPrimitive() || token.equals(Enum.class) || token.isArray()) {
-            throw new ImplerException("Token is not class or interface");
-        }
-        if (Modifier.isFinal(token.getModifiers())) {
-            throw new ImplerException("Token is final");
-        }
-        name = token.getSimpleName() + "Impl";
-        exClass = token;
+        prepare(token);
         try {
             classPathName = filePath(root).toString() + "Impl.java";
             Path path = Paths.get(classPathName);
@@ -166,6 +195,67 @@ public class Implementor implements JarImpler {
         }
     }
 
+    /**
+     * Check that <code>token</code> can be implemented and remember it as <code>exClass</code>.
+     * @param token type token to create implementation for.
+     * @throws ImplerException if <code>token</code> is <code>null</code>, final, primitive, array or enum.
+     */
+    private void prepare(Class<?> token) throws ImplerException {
+        if (token == null) {
+            throw new ImplerException("Empty token or root.");
+        }
+        if (token.isPrimitive() || token.equals(Enum.class) || token.isArray()) {
+            throw new ImplerException("Token is not class or interface");
+        }
+        if (Modifier.isFinal(token.getModifiers())) {
+            throw new ImplerException("Token is final");
+        }
+        name = token.getSimpleName() + "Impl";
+        packageName = token.getPackage() != null ? token.getPackage().getName() : "";
+        exClass = token;
+    }
+
+    /**
+     * Generate source code of implementation of <code>token</code> in memory.
+     * @param token type token to create implementation for.
+     * @return {@link String} with source code, as it would be written by {@link #implement(Class, Path)}.
+     * @throws ImplerException when implementation cannot be generated.
+     */
+    String generateSource(Class<?> token) throws ImplerException {
+        prepare(token);
+        return printSource();
+    }
+
+    /**
+     * Generate source code of implementation of <code>token</code> in given package.
+     * Type token is referenced by its canonical name, so it may belong to a package
+     * where new classes can't be defined, like <tt>java.util</tt>.
+     * @param token type token to create implementation for.
+     * @param packageName is package of implementation, empty for the default package.
+     * @return {@link String} with source code.
+     * @throws ImplerException when implementation cannot be generated.
+     */
+    String generateSource(Class<?> token, String packageName) throws ImplerException {
+        prepare(token);
+        this.packageName = packageName;
+        return printSource();
+    }
+
+    /**
+     * Write source code of implementation of prepared <code>exClass</code> to {@link String}.
+     * @return {@link String} with source code.
+     * @throws ImplerException when implementation cannot be generated.
+     */
+    private String printSource() throws ImplerException {
+        StringWriter writer = new StringWriter();
+        try (Writer classFile = new UnicodeFilter(writer)) {
+            printClass(classFile);
+        } catch (IOException e) {
+            throw new ImplerException("Can't generate class " + name, e);
+        }
+        return writer.toString();
+    }
+
     /**
      * Filter for Unicode extends {@link FilterWriter}
      *
@@ -253,11 +343,13 @@ public class Implementor implements JarImpler {
      * @throws ImplerException is will be throwing if type token haven't public constructors, but have private or protected.
      */
     private void printClass(Writer writer) throws IOException, ImplerException {
-        if (exClass.getPackage() != null) {
-            writer.write("package " + exClass.getPackage().getName() + ";" + "\n");
+        if (!packageName.isEmpty()) {
+            writer.write("package " + packageName + ";" + "\n");
         }
-        writer.write(printModifier(exClass.getModifiers(), Modifier.classModifiers()) + "class " + name + " ");
-        writer.write((exClass.isInterface()?"implements ":"extends ") + exClass.getSimpleName() + "{"+ "\n");
+        // Implementation is a top-level class even for nested token
+        int classModifiers = Modifier.classModifiers() & ~(Modifier.STATIC | Modifier.PROTECTED | Modifier.PRIVATE);
+        writer.write(printModifier(exClass.getModifiers(), classModifiers) + "class " + name + " ");
+        writer.write((exClass.isInterface()?"implements ":"extends ") + exClass.getCanonicalName() + "{"+ "\n");
         int counterConstr = 0;
         for (Constructor<?> constructor : exClass.getDeclaredConstructors()) {
             if (!Modifier.isFinal(constructor.getModifiers()) && !Modifier.isPrivate(constructor.getModifiers())) {
@@ -292,7 +384,9 @@ public class Implementor implements JarImpler {
      * Produces <tt>.jar</tt> file implementing class or interface specified by provided <tt>token</tt>.
      * <p>
      * Generated class full name should be same as full name of the type token with <tt>Impl</tt> suffix
-     * added.
+     * added. Source code and class file are kept in memory and written to jar by {@link JarWriter}.
+     * If {@link ImplCache cache} already contains jar for the same source code, it is reused
+     * without generation and compilation.
      *
      * @param token type token to create implementation for.
      * @param jarFile target <tt>.jar</tt> file.
@@ -300,68 +394,44 @@ public class Implementor implements JarImpler {
      */
     @Override
     public void implementJar(Class<?> token, Path jarFile) throws ImplerException {
+        String source = generateSource(token);
+        String key = null;
+        if (cache != null) {
+            key = cache.key(source + "\n" + jarWriter);
+            if (cache.fetch(key, jarFile)) {
+                return;
+            }
+        }
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        MemoryCompiler.compile(token, implName(token), source)
+                .forEach((className, bytes) -> entries.put(className.replace('.', '/') + ".class", bytes));
         try {
-            Path path = Paths.get(".");
-            implement(token, path);
-            Path file = Paths.get(classPathName).normalize();
-            compileFile(path, file);
-            Path classFile = fileClassPath(file);
-            printJar(jarFile, classFile);
-            classFile.toFile().deleteOnExit();
+            jarWriter.write(jarFile, entries);
         } catch (IOException e) {
-            throw new ImplerException("Find IOException in process of get file name: " + e.getMessage());
-        } catch (ImplerException e) {
-            throw new ImplerException(e);
+            throw new ImplerException("Can't write jar " + jarFile + ": " + e.getMessage(), e);
         }
-    }
-
-    /**
-     *
-     /**
-     * Print JARFile from {@link Path pathJar}.
-     * @param path -- home directory for JAR
-     * @param filePath -- {@link Path} for printing
-     * @throws IOException if problem in {@link JarOutputStream}
-     */
-    private void printJar(Path path, Path filePath) throws IOException {
-        try(JarOutputStream jarStream = new JarOutputStream(Files.newOutputStream(path))) {
-            jarStream.putNextEntry(new ZipEntry(filePath.toString()));
-            Files.copy(filePath, jarStream);
+        if (key != null) {
+            cache.store(key, jarFile);
         }
     }
 
-
     /**
-     * Transform {@link Path path} of ".java" to ".class"
-     * @param path is {@link Path} of Java file.
-     * @return {@link Path path} of class file.
-     * @throws ImplerException if file not ".java"
+     * Full name of implementation of <code>token</code>.
+     * @param token type token to create implementation for.
+     * @return name of <code>token</code> with <tt>Impl</tt> suffix in the package of <code>token</code>.
      */
-    private Path fileClassPath(Path path) throws ImplerException {
-        String pathStr = path.toString();
-        if (!pathStr.endsWith(".java")) {
-            throw new ImplerException("Not java file path");
-        }
-        return Paths.get(pathStr.substring(0, pathStr.length() - 5) + ".class");
+    static String implName(Class<?> token) {
+        return implName(token, token.getPackage() != null ? token.getPackage().getName() : "");
     }
 
     /**
-     * Compile <code>fileToCompile</code> from <code>root</code>.
-     * @param root is {@link Path} of <code>fileToCompile</code>
-     * @param fileToCompile is {@link Path} of file to compile
-     * @throws ImplerException if compiler not found or code of returns not zero
+     * Full name of implementation of <code>token</code> in given package.
+     * @param token type token to create implementation for.
+     * @param packageName is package of implementation, empty for the default package.
+     * @return name of <code>token</code> with <tt>Impl</tt> suffix in <code>packageName</code>.
      */
-    private void compileFile(Path root, Path fileToCompile) throws ImplerException {
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        if (compiler == null) {
-            throw new ImplerException("Compiler not found");
-        }
-
-        int returnCode = compiler.run(null, null, null, fileToCompile.toString(), "-encoding", "utf8", "-cp",
-                root + "/" + System.getProperty("java.class.path"));
-        if (returnCode != 0) {
-            throw new ImplerException("Compiler returns non-zero code");
-        }
+    static String implName(Class<?> token, String packageName) {
+        return (packageName.isEmpty() ? "" : packageName + ".") + token.getSimpleName() + "Impl";
     }
 
     /**
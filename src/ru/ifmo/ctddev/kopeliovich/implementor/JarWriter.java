@@ -0,0 +1,345 @@
+package ru.ifmo.ctddev.kopeliovich.implementor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of <tt>.jar</tt> files from entries stored in memory.
+ * <p>
+ * Written jar contains manifest and directory entries for all packages. All entries have the same fixed
+ * timestamp, so the same classes always produce the same jar.
+ * Entries are either {@link #STORED stored} or deflated with given level.
+ * Every entry is deflated by its own {@link Deflater}, in parallel when it is enabled, and compressed
+ * entries are written by a plain zip writer, because {@link java.util.zip.ZipOutputStream} compresses
+ * entries one by one while writing them.
+ *
+ * @author Kopeliovich Anna(annnufan@gmail.com)
+ */
+public class JarWriter {
+    /**
+     * Level for entries stored without compression.
+     */
+    public static final int STORED = -2;
+    /**
+     * MS-DOS date of all entries: 1980-02-01. Time of all entries is 00:00.
+     */
+    private static final int DOS_DATE = (2 << 5) | 1;
+    /**
+     * Version of zip format which supports deflate: 2.0.
+     */
+    private static final int ZIP_VERSION = 20;
+    /**
+     * General purpose flag: names are encoded in UTF-8.
+     */
+    private static final int UTF8_FLAG = 0x0800;
+    /**
+     * Compression methods of zip format.
+     */
+    private static final int METHOD_STORED = 0, METHOD_DEFLATED = 8;
+    /**
+     * Maximal number of entries and maximal size or offset in zip format without zip64 extensions.
+     */
+    private static final long MAX_ENTRIES = 0xFFFF, MAX_SIZE = 0xFFFFFFFFL;
+
+    /**
+     * {@link Deflater} level, {@link Deflater#DEFAULT_COMPRESSION} or {@link #STORED}.
+     */
+    private final int level;
+    /**
+     * Whether entries are deflated in parallel.
+     */
+    private final boolean parallel;
+
+    /**
+     * Create writer with default compression which deflates entries in parallel.
+     */
+    public JarWriter() {
+        this(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Create writer with given compression <code>level</code>.
+     *
+     * @param level    is {@link Deflater} level from 0 to 9, {@link Deflater#DEFAULT_COMPRESSION} or {@link #STORED}.
+     * @param parallel is <code>true</code> if entries should be deflated in parallel.
+     * @throws IllegalArgumentException if <code>level</code> is invalid.
+     */
+    public JarWriter(int level, boolean parallel) {
+        if (level != STORED && level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.level = level;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Write jar with given <code>entries</code> to <code>path</code>.
+     * Jar is written to a temporary file and moved over <code>path</code>, so existing file is replaced
+     * rather than overwritten. It matters when <code>path</code> is a hard link to {@link ImplCache} entry.
+     *
+     * @param path    is {@link Path} of resulting jar.
+     * @param entries is map from entry names, like <tt>java/util/ListImpl.class</tt>, to their contents.
+     * @throws IOException if jar can't be written.
+     */
+    public void write(Path path, Map<String, byte[]> entries) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = newTempFile(parent, path.getFileName().toString());
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.WRITE)) {
+                write(out, entries);
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Create empty temporary file with unique name in <code>dir</code>.
+     * Unlike {@link Files#createTempFile(Path, String, String)}, file gets default permissions,
+     * so jar moved from it is readable as any other file created by the user.
+     *
+     * @param dir    is directory of file.
+     * @param prefix is prefix of file name.
+     * @return {@link Path} of new file with <tt>.tmp</tt> suffix.
+     * @throws IOException if file can't be created.
+     */
+    static Path newTempFile(Path dir, String prefix) throws IOException {
+        while (true) {
+            Path tmp = dir.resolve(prefix + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                Files.newByteChannel(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+                return tmp;
+            } catch (FileAlreadyExistsException ignored) {
+                // Try another name
+            }
+        }
+    }
+
+    /**
+     * Write jar with given <code>entries</code> to <code>out</code>.
+     * Entries are deflated in parallel only if there are several of them.
+     *
+     * @param out     is {@link OutputStream} for jar, it is closed afterwards.
+     * @param entries is map from entry names to their contents.
+     * @throws IOException if jar can't be written or it is too large for zip format without zip64.
+     */
+    public void write(OutputStream out, Map<String, byte[]> entries) throws IOException {
+        TreeSet<String> dirs = new TreeSet<>();
+        for (String name : entries.keySet()) {
+            for (int i = name.indexOf('/'); i >= 0; i = name.indexOf('/', i + 1)) {
+                dirs.add(name.substring(0, i + 1));
+            }
+        }
+        dirs.remove("META-INF/");
+
+        List<Map.Entry<String, byte[]>> files = new ArrayList<>();
+        files.add(new AbstractMap.SimpleImmutableEntry<>("META-INF/", new byte[0]));
+        files.add(new AbstractMap.SimpleImmutableEntry<>(JarFile.MANIFEST_NAME, manifest()));
+        for (String dir : dirs) {
+            files.add(new AbstractMap.SimpleImmutableEntry<>(dir, new byte[0]));
+        }
+        files.addAll(new TreeMap<>(entries).entrySet());
+        if (files.size() > MAX_ENTRIES) {
+            throw new IOException("Too many jar entries: " + files.size());
+        }
+
+        Stream<Map.Entry<String, byte[]>> stream = files.stream();
+        if (parallel && entries.size() > 1) {
+            stream = stream.parallel();
+        }
+        List<Entry> prepared = stream.map(e -> entry(e.getKey(), e.getValue())).collect(Collectors.toList());
+
+        try (OutputStream zip = new BufferedOutputStream(out)) {
+            long offset = 0;
+            long[] offsets = new long[prepared.size()];
+            for (int i = 0; i < prepared.size(); i++) {
+                Entry entry = prepared.get(i);
+                offsets[i] = offset;
+                zip.write(entry.header(false, 0));
+                zip.write(entry.data);
+                offset += 30 + entry.name.length + entry.data.length;
+            }
+            long directory = offset;
+            for (int i = 0; i < prepared.size(); i++) {
+                byte[] header = prepared.get(i).header(true, offsets[i]);
+                zip.write(header);
+                offset += header.length;
+            }
+            if (offset > MAX_SIZE) {
+                throw new IOException("Jar is too large: " + offset + " bytes");
+            }
+            ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(0x06054b50)
+                    .putShort((short) 0).putShort((short) 0)
+                    .putShort((short) prepared.size()).putShort((short) prepared.size())
+                    .putInt((int) (offset - directory)).putInt((int) directory)
+                    .putShort((short) 0);
+            zip.write(end.array());
+        }
+    }
+
+    /**
+     * Compute checksum of entry and compress it. Directories and {@link #STORED stored} entries
+     * are kept as is.
+     *
+     * @param name  is name of entry.
+     * @param bytes is content of entry.
+     * @return new {@link Entry}.
+     */
+    private Entry entry(String name, byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (level == STORED || name.endsWith("/")) {
+            return new Entry(name, METHOD_STORED, bytes, bytes.length, crc.getValue());
+        }
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream data = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                data.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return new Entry(name, METHOD_DEFLATED, data.toByteArray(), bytes.length, crc.getValue());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Prepared entry of zip file.
+     */
+    private static class Entry {
+        /**
+         * Name of entry in UTF-8.
+         */
+        final byte[] name;
+        /**
+         * Compression method of zip format.
+         */
+        final int method;
+        /**
+         * Compressed content of entry.
+         */
+        final byte[] data;
+        /**
+         * Size of uncompressed content.
+         */
+        final int size;
+        /**
+         * CRC-32 of uncompressed content.
+         */
+        final long crc;
+
+        /**
+         * Create entry.
+         *
+         * @param name   is name of entry.
+         * @param method is compression method of zip format.
+         * @param data   is compressed content.
+         * @param size   is size of uncompressed content.
+         * @param crc    is CRC-32 of uncompressed content.
+         */
+        Entry(String name, int method, byte[] data, int size, long crc) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.data = data;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        /**
+         * Generate local file header or central directory header of entry.
+         *
+         * @param central is <code>true</code> for central directory header.
+         * @param offset  is offset of local file header, used in central directory header.
+         * @return bytes of header followed by name.
+         * @throws IOException if name or offset doesn't fit zip format.
+         */
+        byte[] header(boolean central, long offset) throws IOException {
+            if (name.length > MAX_ENTRIES || offset > MAX_SIZE) {
+                throw new IOException("Jar entry is too large: " + new String(name, StandardCharsets.UTF_8));
+            }
+            ByteBuffer header = ByteBuffer.allocate((central ? 46 : 30) + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(central ? 0x02014b50 : 0x04034b50);
+            if (central) {
+                header.putShort((short) ZIP_VERSION);
+            }
+            header.putShort((short) ZIP_VERSION)
+                    .putShort((short) UTF8_FLAG)
+                    .putShort((short) method)
+                    .putShort((short) 0)
+                    .putShort((short) DOS_DATE)
+                    .putInt((int) crc)
+                    .putInt(data.length)
+                    .putInt(size)
+                    .putShort((short) name.length)
+                    .putShort((short) 0);
+            if (central) {
+                // comment length, disk number, internal and external attributes, offset of local header
+                header.putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) offset);
+            }
+            header.put(name);
+            return header.array();
+        }
+    }
+
+    /**
+     * Generate manifest of jar.
+     *
+     * @return bytes of manifest.
+     * @throws IOException if manifest can't be written.
+     */
+    private static byte[] manifest() throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(new Attributes.Name("Created-By"), Implementor.class.getName());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Describe settings of writer, they are a part of {@link ImplCache} key.
+     *
+     * @return {@link String} with compression level.
+     */
+    @Override
+    public String toString() {
+        return "JarWriter(level=" + (level == STORED ? "stored" : Integer.toString(level)) + ")";
+    }
+}
@@ -0,0 +1,152 @@
+package ru.ifmo.ctddev.kopeliovich.implementor;
+
+import info.kgeorgiy.java.advanced.implementor.ImplerException;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiler of generated source code which keeps both sources and class files in memory.
+ *
+ * @author Kopeliovich Anna(annnufan@gmail.com)
+ */
+class MemoryCompiler {
+
+    /**
+     * Compile one class from <code>source</code>.
+     * Class path consists of <tt>java.class.path</tt> and location of <code>token</code>.
+     *
+     * @param token     is type token which is implemented by <code>source</code>.
+     * @param className is full name of compiled class.
+     * @param source    is source code of the class.
+     * @return map from binary class names to their class files, in order of generation.
+     * @throws ImplerException if compiler not found or source can't be compiled.
+     */
+    static Map<String, byte[]> compile(Class<?> token, String className, String source) throws ImplerException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new ImplerException("Compiler not found");
+        }
+        Map<String, ByteArrayOutputStream> classes = new LinkedHashMap<>();
+        StringWriter errors = new StringWriter();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+        try (JavaFileManager manager = new ClassFileManager(standard, classes)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(errors, manager, null,
+                    Arrays.asList("-encoding", "utf8", "-cp", classPath(token)), null,
+                    Collections.singletonList(new SourceFile(className, source)));
+            if (!task.call()) {
+                throw new ImplerException("Can't compile " + className + ":\n" + errors);
+            }
+        } catch (IOException e) {
+            throw new ImplerException("Can't close file manager: " + e.getMessage(), e);
+        }
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        classes.forEach((name, bytes) -> result.put(name, bytes.toByteArray()));
+        return result;
+    }
+
+    /**
+     * Make class path for compilation of implementation of <code>token</code>.
+     *
+     * @param token is type token.
+     * @return <tt>java.class.path</tt> with location of <code>token</code>, if it is known.
+     */
+    private static String classPath(Class<?> token) {
+        String classPath = System.getProperty("java.class.path");
+        CodeSource source = token.getProtectionDomain().getCodeSource();
+        if (source != null && source.getLocation() != null) {
+            try {
+                classPath = Paths.get(source.getLocation().toURI()) + File.pathSeparator + classPath;
+            } catch (URISyntaxException | IllegalArgumentException ignored) {
+            }
+        }
+        return classPath;
+    }
+
+    /**
+     * Source file stored in {@link String}.
+     */
+    private static class SourceFile extends SimpleJavaFileObject {
+        /**
+         * Source code.
+         */
+        private final String source;
+
+        /**
+         * Create source file of class <code>className</code>.
+         *
+         * @param className is full name of class.
+         * @param source    is source code.
+         */
+        SourceFile(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * File manager which stores class files to {@link ByteArrayOutputStream byte arrays}.
+     */
+    private static class ClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        /**
+         * Map from binary class names to their class files.
+         */
+        private final Map<String, ByteArrayOutputStream> classes;
+
+        /**
+         * Create manager which stores class files to <code>classes</code>.
+         *
+         * @param fileManager is manager for everything except output class files.
+         * @param classes     is map for output class files.
+         */
+        ClassFileManager(StandardJavaFileManager fileManager, Map<String, ByteArrayOutputStream> classes) {
+            super(fileManager);
+            this.classes = classes;
+        }
+
+        /**
+         * Returns in-memory class file for class <code>className</code>.
+         * <p>
+         * {@inheritDoc}
+         */
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+            URI uri = URI.create("bytes:///" + className.replace('.', '/') + kind.extension);
+            return new SimpleJavaFileObject(uri, kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                    classes.put(className, stream);
+                    return stream;
+                }
+            };
+        }
+    }
+}
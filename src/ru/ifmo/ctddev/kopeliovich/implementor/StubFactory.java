@@ -0,0 +1,214 @@
+package ru.ifmo.ctddev.kopeliovich.implementor;
+
+import info.kgeorgiy.java.advanced.implementor.ImplerException;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+/**
+ * Factory of runtime stubs for interfaces and abstract classes.
+ * <p>
+ * Unlike {@link java.lang.reflect.Proxy}, stub is a real class generated by {@link Implementor},
+ * so its methods return default values directly and can be inlined by JIT.
+ * Classes are compiled and defined in memory, and cached by type token in a {@link ClassValue},
+ * so cache doesn't keep tokens and their class loaders from being unloaded.
+ * <p>
+ * Stubs are generated into package {@value #STUB_PACKAGE}, so JDK types like {@link java.util.List}
+ * can be stubbed too. Every stub is defined by its own {@link ClassLoader}, whose parent is a loader
+ * of type token, so names of stubs never clash. Stub is in another runtime package than its token,
+ * so tokens with package-private abstract methods can't be stubbed, as well as tokens from the default package.
+ *
+ * @author Kopeliovich Anna(annnufan@gmail.com)
+ */
+public class StubFactory {
+    /**
+     * Package of generated stubs.
+     */
+    static final String STUB_PACKAGE = "ru.ifmo.ctddev.kopeliovich.implementor.stubs";
+
+    /**
+     * Holders of generated stub classes by type tokens.
+     * {@link ClassValue#computeValue(Class)} may run concurrently, so it only creates a holder,
+     * and stub is generated by the holder once.
+     */
+    private final ClassValue<Stub> stubs = new ClassValue<Stub>() {
+        @Override
+        protected Stub computeValue(Class<?> token) {
+            return new Stub();
+        }
+    };
+
+    /**
+     * Get class implementing <code>token</code>. Class is generated on first request and cached.
+     *
+     * @param token type token to create implementation for.
+     * @param <T>   type of token.
+     * @return stub class.
+     * @throws ImplerException when implementation cannot be generated.
+     */
+    public <T> Class<? extends T> getStubClass(Class<T> token) throws ImplerException {
+        if (token == null) {
+            throw new ImplerException("Empty token");
+        }
+        return stubs.get(token).get(token).asSubclass(token);
+    }
+
+    /**
+     * Create new instance of stub for <code>token</code> using constructor with given <code>args</code>.
+     *
+     * @param token type token to create implementation for.
+     * @param args  arguments of constructor, none for interfaces.
+     * @param <T>   type of token.
+     * @return new stub instance.
+     * @throws ImplerException when implementation cannot be generated or no suitable constructor is found.
+     */
+    public <T> T newStub(Class<T> token, Object... args) throws ImplerException {
+        Class<? extends T> stub = getStubClass(token);
+        for (Constructor<?> constructor : stub.getDeclaredConstructors()) {
+            if (constructor.getParameterCount() != args.length) {
+                continue;
+            }
+            try {
+                constructor.setAccessible(true);
+                return token.cast(constructor.newInstance(args));
+            } catch (IllegalArgumentException e) {
+                // Another constructor with the same number of parameters may fit
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new ImplerException("Can't create instance of " + stub.getName() + ": " + e.getMessage(), e);
+            } catch (InvocationTargetException e) {
+                throw new ImplerException("Constructor of " + stub.getName() + " failed", e.getCause());
+            }
+        }
+        throw new ImplerException("No constructor of " + stub.getName() + " for given arguments");
+    }
+
+    /**
+     * Generate, compile and define stub class for <code>token</code>.
+     *
+     * @param token type token to create implementation for.
+     * @return stub class.
+     * @throws ImplerException when implementation cannot be generated.
+     */
+    private static Class<?> generate(Class<?> token) throws ImplerException {
+        String source = new Implementor(null).generateSource(token, STUB_PACKAGE);
+        checkAccessible(token);
+        String className = Implementor.implName(token, STUB_PACKAGE);
+        Map<String, byte[]> classes = MemoryCompiler.compile(token, className, source);
+        StubClassLoader loader = new StubClassLoader(token.getClassLoader(), classes);
+        try {
+            return loader.loadClass(className);
+        } catch (SecurityException | LinkageError e) {
+            throw new ImplerException("Can't define class " + className + ": " + e.getMessage(), e);
+        } catch (ClassNotFoundException e) {
+            throw new ImplerException("Compiled class not found: " + className, e);
+        }
+    }
+
+    /**
+     * Check that stub for <code>token</code> can be defined outside of its runtime package.
+     *
+     * @param token type token.
+     * @throws ImplerException if <code>token</code> is in the default package,
+     * or it or one of its abstract methods is package-private.
+     */
+    private static void checkAccessible(Class<?> token) throws ImplerException {
+        if (!Modifier.isPublic(token.getModifiers())) {
+            throw new ImplerException("Token is not public: " + token.getName());
+        }
+        if (token.getName().indexOf('.') < 0) {
+            throw new ImplerException("Token in the default package can't be referenced from " + STUB_PACKAGE + ": " + token.getName());
+        }
+        for (Class<?> c = token; c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                int mod = method.getModifiers();
+                if (Modifier.isAbstract(mod) && !Modifier.isPublic(mod) && !Modifier.isProtected(mod)) {
+                    throw new ImplerException("Package-private abstract method " + method);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stub class of a single type token, generated on the first request.
+     */
+    private static class Stub {
+        /**
+         * Generated class, <code>null</code> until it is generated successfully.
+         */
+        private Class<?> stub;
+
+        /**
+         * Get stub class, generate it if necessary. Concurrent requests wait for the first one.
+         *
+         * @param token type token to create implementation for.
+         * @return stub class.
+         * @throws ImplerException when implementation cannot be generated.
+         */
+        synchronized Class<?> get(Class<?> token) throws ImplerException {
+            if (stub == null) {
+                stub = generate(token);
+            }
+            return stub;
+        }
+    }
+
+    /**
+     * Class loader for classes compiled in memory.
+     * Compiled classes are loaded before asking parent, so a class with the same name
+     * on the class path can't replace the stub.
+     */
+    private static class StubClassLoader extends ClassLoader {
+        /**
+         * Class files by binary class names.
+         */
+        private final Map<String, byte[]> classes;
+
+        /**
+         * Create loader of <code>classes</code> with given <code>parent</code>.
+         *
+         * @param parent  is loader of type token.
+         * @param classes is map from binary class names to class files.
+         */
+        StubClassLoader(ClassLoader parent, Map<String, byte[]> classes) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        /**
+         * Load compiled class by this loader, delegate other classes to parent.
+         * <p>
+         * {@inheritDoc}
+         */
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!classes.containsKey(name)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    c = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
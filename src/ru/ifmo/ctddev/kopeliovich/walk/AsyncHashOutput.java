@@ -0,0 +1,144 @@
+package ru.ifmo.ctddev.kopeliovich.walk;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link HashOutput} which reads files with {@link AsynchronousFileChannel}, keeping up to
+ * <code>inFlight</code> files being read at once. Chunks of every file are hashed in order,
+ * and lines are written in the same order as they would be written by {@link HashOutput}.
+ * <p>
+ * {@link AsynchronousFileChannel} performs reads as blocking tasks of its executor, so on Linux
+ * every read in flight costs one thread: the pool has <code>inFlight</code> threads, independent of
+ * number of processors. Files are opened by the same pool: every file in flight is either being opened
+ * or has exactly one read outstanding, so neither of them waits for a thread.
+ */
+class AsyncHashOutput extends HashOutput {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxPending;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+
+    AsyncHashOutput(BufferedWriter writer, WalkIndex.Builder index, int inFlight) {
+        super(writer, index);
+        this.executor = Executors.newFixedThreadPool(inFlight, r -> daemon(r, "walk-async"));
+        this.inFlight = new Semaphore(inFlight);
+        this.maxPending = inFlight * 16;
+    }
+
+    @Override
+    void file(Path path) throws IOException {
+        inFlight.acquireUninterruptibly();
+        CompletableFuture<Integer> hash = new CompletableFuture<>();
+        hash.whenComplete((h, e) -> inFlight.release());
+        executor.execute(() -> open(path, hash));
+        enqueue(hash, path.toString());
+    }
+
+    @Override
+    void write(int hash, String path) throws IOException {
+        enqueue(CompletableFuture.completedFuture(hash), path);
+    }
+
+    @Override
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeFirst();
+        }
+        super.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void enqueue(CompletableFuture<Integer> hash, String path) throws IOException {
+        pending.add(new Pending(hash, path));
+        while (!pending.isEmpty() && (pending.peekFirst().hash.isDone() || pending.size() > maxPending)) {
+            writeFirst();
+        }
+    }
+
+    private void writeFirst() throws IOException {
+        Pending first = pending.removeFirst();
+        super.write(first.hash.join(), first.path);
+    }
+
+    private void open(Path path, CompletableFuture<Integer> result) {
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(path,
+                    Collections.singleton(StandardOpenOption.READ), executor);
+            read(channel, ByteBuffer.allocate(CHUNK_SIZE), 0, FNVFilteredStream.FNV_32_INIT, result);
+        } catch (IOException | RuntimeException e) {
+            result.complete(RecursiveWalk.ERROR_HASH);
+        }
+    }
+
+    private void read(AsynchronousFileChannel channel, ByteBuffer buffer, long position, int hash, CompletableFuture<Integer> result) {
+        channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read == -1) {
+                    finish(channel, result, hash);
+                    return;
+                }
+                buffer.flip();
+                int next = FNVFilteredStream.countHash(hash, buffer);
+                buffer.clear();
+                try {
+                    read(channel, buffer, position + read, next, result);
+                } catch (RuntimeException e) {
+                    finish(channel, result, RecursiveWalk.ERROR_HASH);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                finish(channel, result, RecursiveWalk.ERROR_HASH);
+            }
+        });
+    }
+
+    private static void finish(AsynchronousFileChannel channel, CompletableFuture<Integer> result, int hash) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        result.complete(hash);
+    }
+
+    private static class Pending {
+        final CompletableFuture<Integer> hash;
+        final String path;
+
+        Pending(CompletableFuture<Integer> hash, String path) {
+            this.hash = hash;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package ru.ifmo.ctddev.kopeliovich.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Progress of {@link RecursiveWalk}: byte offsets in input and output files after the last completed input line.
+ * Checkpoint is replaced atomically, so it always matches some prefix of output.
+ * It also records shard and size and modification time of input, so it can't be resumed with another input.
+ */
+class Checkpoint {
+    final long input;
+    final long output;
+    final String source;
+
+    Checkpoint(long input, long output, String source) {
+        this.input = input;
+        this.output = output;
+        this.source = source;
+    }
+
+    static String source(Path input, int shard, int shards) throws IOException {
+        return shard + "/" + shards + " " + Files.size(input) + " " + Files.getLastModifiedTime(input).toMillis();
+    }
+
+    static Path pathFor(Path output) {
+        return output.resolveSibling(output.getFileName() + ".checkpoint");
+    }
+
+    static Checkpoint read(Path path) throws IOException {
+        String[] parts = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim().split(" ", 3);
+        try {
+            if (parts.length == 3) {
+                Checkpoint checkpoint = new Checkpoint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+                if (checkpoint.input >= 0 && checkpoint.output >= 0) {
+                    return checkpoint;
+                }
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IOException("Corrupted checkpoint");
+    }
+
+    // Output should be forced to disk before, checkpoint itself is forced before it replaces the old one
+    void write(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap((input + " " + output + " " + source).getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
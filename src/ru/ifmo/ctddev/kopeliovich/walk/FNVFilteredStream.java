@@ -3,12 +3,13 @@ package ru.ifmo.ctddev.kopeliovich.walk;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Created by Kopeliovich Anna on 12.02.2017.
  */
 public class FNVFilteredStream extends FilterInputStream{
-    private static final int FNV_32_INIT = 0x811c9dc5;
+    static final int FNV_32_INIT = 0x811c9dc5;
     private static final int FNV_32_PRIME = 0x01000193;
     private int hash = FNV_32_INIT;
 
@@ -26,6 +27,14 @@ public class FNVFilteredStream extends FilterInputStream{
         hash ^= val & 255;
     }
 
+    static int countHash(int hash, ByteBuffer data) {
+        while (data.hasRemaining()) {
+            hash *= FNV_32_PRIME;
+            hash ^= data.get() & 255;
+        }
+        return hash;
+    }
+
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         int cap = super.read(b, off, len);
@@ -0,0 +1,41 @@
+package ru.ifmo.ctddev.kopeliovich.walk;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Output of {@link RecursiveWalk}: writes <tt>%08x path</tt> lines and, optionally, collects them to {@link WalkIndex}.
+ */
+class HashOutput implements Closeable {
+    private final BufferedWriter writer;
+    private final WalkIndex.Builder index;
+
+    HashOutput(BufferedWriter writer, WalkIndex.Builder index) {
+        this.writer = writer;
+        this.index = index;
+    }
+
+    void file(Path path) throws IOException {
+        write(RecursiveWalk.fileFNV(path), path.toString());
+    }
+
+    void write(int hash, String path) throws IOException {
+        writer.write(String.format("%08x %s", hash, path));
+        writer.newLine();
+        if (index != null) {
+            index.add(hash, path);
+        }
+    }
+
+    void flush() throws IOException {
+        writer.flush();
+    }
+
+    // Underlying writer is not closed
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
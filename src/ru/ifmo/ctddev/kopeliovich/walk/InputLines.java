@@ -0,0 +1,118 @@
+package ru.ifmo.ctddev.kopeliovich.walk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reader of UTF-8 lines which knows byte offset of every line.
+ * Reads lines which start in range <tt>[start, end)</tt> of file; if <tt>start</tt> is inside a line,
+ * that line belongs to the previous range. Lines are terminated by <tt>\n</tt>, <tt>\r</tt> or <tt>\r\n</tt>,
+ * like in {@link java.io.BufferedReader#readLine()}.
+ */
+class InputLines implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private final long end;
+    // Offset of the first byte in buffer
+    private long bufferStart;
+    private byte[] line = new byte[256];
+    private int length;
+
+    InputLines(Path path, long start, long end) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.end = end;
+        try {
+            if (start > 0) {
+                seek(start - 1);
+                int c = read();
+                if (c == '\r') {
+                    if (peek() == '\n') {
+                        read();
+                    }
+                } else if (c != '\n' && c != -1) {
+                    readBytes();
+                }
+            } else {
+                seek(0);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Offset of the next line
+    long position() {
+        return bufferStart + buffer.position();
+    }
+
+    String readLine() throws IOException {
+        if (position() >= end || !readBytes()) {
+            return null;
+        }
+        return decoder.decode(ByteBuffer.wrap(line, 0, length)).toString();
+    }
+
+    private boolean readBytes() throws IOException {
+        length = 0;
+        int c = read();
+        if (c == -1) {
+            return false;
+        }
+        while (c != -1 && c != '\n' && c != '\r') {
+            if (length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[length++] = (byte) c;
+            c = read();
+        }
+        if (c == '\r' && peek() == '\n') {
+            read();
+        }
+        return true;
+    }
+
+    private void seek(long position) throws IOException {
+        channel.position(position);
+        bufferStart = position;
+        buffer.clear().limit(0);
+    }
+
+    private int peek() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get(buffer.position()) & 255;
+    }
+
+    private int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 255;
+    }
+
+    private boolean fill() throws IOException {
+        bufferStart += buffer.limit();
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        return read > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
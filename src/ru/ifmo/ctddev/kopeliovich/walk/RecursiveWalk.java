@@ -5,28 +5,129 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by Kopeliovich Anna on 10.02.2017.
  */
 public class RecursiveWalk {
+    private static final int DEFAULT_CHECKPOINT_LINES = 10000;
+
     public static void main(String[] args) {
-        if (args.length < 2) {
-            System.err.println("Run with <input file> <output file> in args");
+        if (args.length > 0 && args[0].equals("--watch")) {
+            WatchingWalk.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        List<String> files = new ArrayList<>();
+        int async = 0;
+        int checkpointLines = 0;
+        boolean resume = false;
+        int shard = 0;
+        int shards = 1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--async") && i + 1 < args.length) {
+                async = parseNumber(args[++i]);
+                if (async <= 0) {
+                    System.err.println("Number of reads in flight should be positive: \"" + args[i] + "\"");
+                    return;
+                }
+            } else if (args[i].equals("--checkpoint") && i + 1 < args.length) {
+                checkpointLines = parseNumber(args[++i]);
+                if (checkpointLines <= 0) {
+                    System.err.println("Number of lines between checkpoints should be positive: \"" + args[i] + "\"");
+                    return;
+                }
+            } else if (args[i].equals("--resume")) {
+                resume = true;
+            } else if (args[i].equals("--shard") && i + 1 < args.length) {
+                String[] parts = args[++i].split("/", 2);
+                shard = parts.length == 2 ? parseNumber(parts[0]) : -1;
+                shards = parts.length == 2 ? parseNumber(parts[1]) : -1;
+                if (shard < 0 || shards <= 0 || shard >= shards) {
+                    System.err.println("Shard should be <i>/<n> with 0 <= i < n: \"" + args[i] + "\"");
+                    return;
+                }
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() < 2) {
+            System.err.println("Run with [--watch] [--async <reads in flight>] [--checkpoint <lines>] [--resume] [--shard <i>/<n>]"
+                    + " <input file> <output file> [index file] in args");
             return;
         }
+        if (resume && checkpointLines == 0) {
+            checkpointLines = DEFAULT_CHECKPOINT_LINES;
+        }
         try {
-            Path pathInput = Paths.get(args[0]);
+            Path pathInput = Paths.get(files.get(0));
             try {
-                Path pathOutput = Paths.get(args[1]);
-                try (BufferedReader inputFile = Files.newBufferedReader(pathInput)) {
-                    try (BufferedWriter output = Files.newBufferedWriter(pathOutput)) {
+                Path pathOutput = Paths.get(files.get(1));
+                Path pathCheckpoint = Checkpoint.pathFor(pathOutput);
+                WalkIndex.Builder index = files.size() > 2 ? new WalkIndex.Builder() : null;
+                long inputSize;
+                String source;
+                try {
+                    inputSize = Files.size(pathInput);
+                    source = Checkpoint.source(pathInput, shard, shards);
+                } catch (IOException e) {
+                    System.err.println("Problem with input file. Can't open \"" + pathInput + "\": " + e.getMessage());
+                    return;
+                }
+                long shardStart = inputSize * shard / shards;
+                long shardEnd = inputSize * (shard + 1) / shards;
+                Checkpoint checkpoint = new Checkpoint(shardStart, 0, source);
+                if (!resume) {
+                    // Output is rewritten, so checkpoint of the previous output must not be resumed
+                    try {
+                        Files.deleteIfExists(pathCheckpoint);
+                    } catch (IOException e) {
+                        System.err.println("Can't delete old checkpoint \"" + pathCheckpoint + "\": " + e.getMessage());
+                        return;
+                    }
+                } else if (Files.exists(pathCheckpoint)) {
+                    try {
+                        checkpoint = Checkpoint.read(pathCheckpoint);
+                    } catch (IOException e) {
+                        System.err.println("Can't read checkpoint \"" + pathCheckpoint + "\": " + e.getMessage());
+                        return;
+                    }
+                    if (!checkpoint.source.equals(source)) {
+                        System.err.println("Checkpoint \"" + pathCheckpoint + "\" was written for shard and input \""
+                                + checkpoint.source + "\", not \"" + source + "\"");
+                        return;
+                    }
+                    try {
+                        if (checkpoint.input < shardStart || checkpoint.input > lineEnd(pathInput, shardEnd)
+                                || checkpoint.input != lineEnd(pathInput, checkpoint.input)) {
+                            System.err.println("Checkpoint \"" + pathCheckpoint + "\" doesn't match shard " + shard + "/" + shards);
+                            return;
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Problem with input file. Can't open \"" + pathInput + "\": " + e.getMessage());
+                        return;
+                    }
+                }
+                try (InputLines inputFile = new InputLines(pathInput, checkpoint.input, shardEnd)) {
+                    try (FileChannel outputChannel = openOutput(pathOutput, checkpoint.output, index);
+                         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                                 Channels.newOutputStream(outputChannel), StandardCharsets.UTF_8.newEncoder()));
+                         HashOutput output = async > 0 ? new AsyncHashOutput(writer, index, async) : new HashOutput(writer, index)) {
                         try {
                             String str;
+                            int lines = 0;
                             while ((str = inputFile.readLine()) != null) {
                                 try{
                                     Path path = Paths.get(str);
@@ -40,10 +141,22 @@ public class RecursiveWalk {
                                     outputHashInformation(ERROR_HASH, str, output);
                                     System.err.println("Invalid path for file or dir in input \"" + str + "\": " + e.getMessage());
                                 }
+                                if (checkpointLines > 0 && ++lines % checkpointLines == 0
+                                        && !writeCheckpoint(inputFile, outputChannel, output, pathOutput, pathCheckpoint, source)) {
+                                    return;
+                                }
+                            }
+                            if (checkpointLines > 0
+                                    && !writeCheckpoint(inputFile, outputChannel, output, pathOutput, pathCheckpoint, source)) {
+                                return;
                             }
                         } catch (IOException e) {
                             System.err.println("Problem with read from input file \"" + pathInput + "\": " + e.getMessage());
                         }
+                        if (index != null) {
+                            output.flush();
+                            writeIndex(index, files.get(2));
+                        }
                     } catch (IOException e) {
                         System.err.println("Can't write to output file \"" + pathOutput + "\": " + e.getMessage());
                     }
@@ -51,31 +164,102 @@ public class RecursiveWalk {
                     System.err.println("Problem with input file. Can't open or file is not in UTF-8. \"" + pathInput + "\": " + e.getMessage());
                 }
             } catch (InvalidPathException e) {
-                System.err.println("Problem with output file. Path not valid -- we can't make this file. \"" + args[1] + "\": " + e.getMessage());
+                System.err.println("Problem with output file. Path not valid -- we can't make this file. \"" + files.get(1) + "\": " + e.getMessage());
+            }
+        } catch (InvalidPathException e) {
+            System.err.println("Problem with input file. Path not valid. \"" + files.get(0) + "\": " + e.getMessage());
+        }
+    }
+
+    // Output is truncated to offset from checkpoint, lines before it are added to index
+    private static FileChannel openOutput(Path path, long offset, WalkIndex.Builder index) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < offset) {
+                throw new IOException("Output is shorter than checkpoint: " + channel.size() + " < " + offset);
             }
+            channel.truncate(offset);
+            channel.position(offset);
+            if (index != null && offset > 0) {
+                try (BufferedReader reader = Files.newBufferedReader(path)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        index.add(Integer.parseUnsignedInt(line.substring(0, 8), 16), line.substring(9));
+                    }
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    throw new IOException("Can't read hashes from output: " + e.getMessage());
+                }
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Offset of the first line which starts at or after offset.
+    // The last line of shard may cross its end, so shard is done at the end of that line
+    private static long lineEnd(Path input, long offset) throws IOException {
+        try (InputLines lines = new InputLines(input, offset, offset)) {
+            return lines.position();
+        }
+    }
+
+    // Returns false if output can't be written, failure to write checkpoint itself is only reported
+    private static boolean writeCheckpoint(InputLines input, FileChannel outputChannel, HashOutput output, Path pathOutput,
+                                           Path path, String source) {
+        try {
+            output.flush();
+            outputChannel.force(false);
+        } catch (IOException e) {
+            System.err.println("Can't write to output file \"" + pathOutput + "\": " + e.getMessage());
+            return false;
+        }
+        try {
+            new Checkpoint(input.position(), outputChannel.position(), source).write(path);
+        } catch (IOException e) {
+            System.err.println("Can't write checkpoint \"" + path + "\": " + e.getMessage());
+        }
+        return true;
+    }
+
+    private static int parseNumber(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void writeIndex(WalkIndex.Builder index, String file) {
+        try {
+            index.write(Paths.get(file));
         } catch (InvalidPathException e) {
-            System.err.println("Problem with input file. Path not valid. \"" + args[0] + "\": " + e.getMessage());
+            System.err.println("Problem with index file. Path not valid. \"" + file + "\": " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Can't write to index file \"" + file + "\": " + e.getMessage());
         }
     }
 
-    private static void processPath(Path path, BufferedWriter output) throws IOException {
+    static void processPath(Path path, HashOutput output) throws IOException {
         if (Files.isDirectory(path)) {
-            for (Path filePath : Files.newDirectoryStream(path)) {
-                processPath(filePath, output);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path filePath : stream) {
+                    processPath(filePath, output);
+                }
             }
         } else {
-            outputHashInformation(fileFNV(path), path.toString(), output);
+            output.file(path);
         }
     }
 
-    private static void outputHashInformation(int hash, String path, BufferedWriter output) throws IOException {
-        output.write(String.format("%08x %s", hash, path));
-        output.newLine();
+    static void outputHashInformation(int hash, String path, HashOutput output) throws IOException {
+        output.write(hash, path);
     }
 
-    private static int ERROR_HASH = 0;
+    static final int ERROR_HASH = 0;
 
-    private static int fileFNV(Path path) {
+    static int fileFNV(Path path) {
         if (Files.notExists(path)) {
             return ERROR_HASH;
         }
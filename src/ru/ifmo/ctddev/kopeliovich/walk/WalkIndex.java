@@ -0,0 +1,367 @@
+package ru.ifmo.ctddev.kopeliovich.walk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of {@link RecursiveWalk} results in a single memory-mapped file.
+ * <p>
+ * File consists of header, open-addressing hash table from hash to records, offsets of records
+ * sorted by unsigned UTF-8 bytes of path and records themselves. Opening maps the file without reading it,
+ * and index is immutable, so it can be queried from any number of threads without locks.
+ * Whole file is a single mapped buffer addressed by int offsets, so it is limited to 2 GiB.
+ * <p>
+ * Run with <tt>&lt;index file&gt; hash &lt;hex&gt;</tt> or <tt>&lt;index file&gt; prefix &lt;path&gt;</tt> in args.
+ */
+public class WalkIndex {
+    private static final int MAGIC = 0x57494458;
+    private static final int VERSION = 2;
+    // magic, version, count, capacity
+    private static final int HEADER_SIZE = 16;
+    // hash, record number + 1
+    private static final int SLOT_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int capacity;
+    private final int offsetsStart;
+
+    private WalkIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a walk index");
+        }
+        count = buffer.getInt(8);
+        capacity = buffer.getInt(12);
+        long start = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        if (count < 0 || capacity <= 0 || Integer.bitCount(capacity) != 1 || start + count * 4L > buffer.limit()) {
+            throw new IOException("Corrupted walk index");
+        }
+        offsetsStart = (int) start;
+    }
+
+    public static WalkIndex open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Walk index is too large: " + channel.size());
+            }
+            return new WalkIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public List<Entry> findByHash(int hash) {
+        List<Entry> result = new ArrayList<>();
+        for (int slot = slot(hash, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            int record = buffer.getInt(position + 4);
+            if (record == 0) {
+                return result;
+            }
+            if (buffer.getInt(position) == hash) {
+                result.add(entry(record - 1));
+            }
+        }
+    }
+
+    // Entries with path equal to prefix or inside it: "/data/a" matches "/data/a/x", but not "/data/abc"
+    public List<Entry> findByPrefix(String prefix) {
+        List<Entry> result = new ArrayList<>();
+        if (prefix.isEmpty() || prefix.endsWith(File.separator)) {
+            collect(prefix.getBytes(StandardCharsets.UTF_8), result);
+            return result;
+        }
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        for (int i = lowerBound(key); i < count && compare(i, key, false) == 0; i++) {
+            result.add(entry(i));
+        }
+        collect((prefix + File.separator).getBytes(StandardCharsets.UTF_8), result);
+        return result;
+    }
+
+    private void collect(byte[] start, List<Entry> result) {
+        for (int i = lowerBound(start); i < count && compare(i, start, true) == 0; i++) {
+            result.add(entry(i));
+        }
+    }
+
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, key, false) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Compares path of record with key as unsigned bytes, with prefix only the first key.length bytes of path
+    private int compare(int record, byte[] key, boolean prefix) {
+        int offset = buffer.getInt(offsetsStart + record * 4);
+        int length = buffer.getInt(offset + 4);
+        for (int i = 0; i < length && i < key.length; i++) {
+            int diff = (buffer.get(offset + 8 + i) & 255) - (key[i] & 255);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return prefix && length >= key.length ? 0 : Integer.compare(length, key.length);
+    }
+
+    private Entry entry(int record) {
+        int offset = buffer.getInt(offsetsStart + record * 4);
+        byte[] bytes = new byte[buffer.getInt(offset + 4)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 8);
+        view.get(bytes);
+        return new Entry(buffer.getInt(offset), new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static int slot(int hash, int capacity) {
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    public static class Entry {
+        public final int hash;
+        public final String path;
+
+        Entry(int hash, String path) {
+            this.hash = hash;
+            this.path = path;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%08x %s", hash, path);
+        }
+    }
+
+    /**
+     * Collects results of walk in memory and writes them as {@link WalkIndex}.
+     * Records are kept encoded in chunks of bytes, in the same format as in the index file,
+     * and referenced by ints: chunk number in high bits and offset in low bits.
+     */
+    public static class Builder {
+        private static final int OFFSET_BITS = 23;
+        private static final int MAX_CHUNK_SIZE = 1 << OFFSET_BITS;
+        private static final int MAX_CHUNKS = 1 << (31 - OFFSET_BITS);
+
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current;
+        private long size;
+        private int[] refs = new int[16];
+        private int count;
+        private boolean tooLarge;
+
+        public void add(int hash, String path) {
+            byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+            int length = 8 + bytes.length;
+            if (tooLarge || size + length > Integer.MAX_VALUE) {
+                tooLarge = true;
+                return;
+            }
+            if (current == null || current.remaining() < length) {
+                if (chunks.size() == MAX_CHUNKS) {
+                    tooLarge = true;
+                    return;
+                }
+                // Chunks grow from 4 KiB, so small walks don't allocate much; a longer record gets its own chunk
+                int capacity = current == null ? 4096 : Math.min(current.capacity() * 2, MAX_CHUNK_SIZE);
+                current = ByteBuffer.allocate(Math.max(capacity, length));
+                chunks.add(current);
+            }
+            if (count == refs.length) {
+                refs = Arrays.copyOf(refs, refs.length * 2);
+            }
+            refs[count++] = (chunks.size() - 1) << OFFSET_BITS | current.position();
+            current.putInt(hash).putInt(bytes.length).put(bytes);
+            size += length;
+        }
+
+        public void write(Path file) throws IOException {
+            if (tooLarge) {
+                throw new IOException("Walk index is larger than 2 GiB, limit is reached after " + count + " records");
+            }
+            long slots = Long.highestOneBit(Math.max(1, count) * 2L - 1) << 1;
+            long total = HEADER_SIZE + slots * SLOT_SIZE + count * 4L + size;
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Walk index of " + count + " records takes " + total + " bytes, limit is 2 GiB");
+            }
+            int capacity = (int) slots;
+            ByteBuffer[] buffers = chunks.toArray(new ByteBuffer[0]);
+            int[] order = sorted(buffers);
+            int[] table = new int[capacity * 2];
+            for (int record = 0; record < count; record++) {
+                int ref = order[record];
+                int hash = buffers[ref >>> OFFSET_BITS].getInt(ref & (MAX_CHUNK_SIZE - 1));
+                int slot = slot(hash, capacity);
+                while (table[slot * 2 + 1] != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table[slot * 2] = hash;
+                table[slot * 2 + 1] = record + 1;
+            }
+
+            // Index may be mapped by readers, so it is replaced rather than rewritten
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                writeTo(tmp, capacity, table, buffers, order);
+                try {
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private void writeTo(Path file, int capacity, int[] table, ByteBuffer[] buffers, int[] order) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer out = ByteBuffer.allocate(1 << 16);
+                putInt(channel, out, MAGIC);
+                putInt(channel, out, VERSION);
+                putInt(channel, out, count);
+                putInt(channel, out, capacity);
+                for (int value : table) {
+                    putInt(channel, out, value);
+                }
+                int offset = HEADER_SIZE + capacity * SLOT_SIZE + count * 4;
+                for (int ref : order) {
+                    putInt(channel, out, offset);
+                    offset += 8 + buffers[ref >>> OFFSET_BITS].getInt((ref & (MAX_CHUNK_SIZE - 1)) + 4);
+                }
+                for (int ref : order) {
+                    ByteBuffer record = buffers[ref >>> OFFSET_BITS].duplicate();
+                    int start = ref & (MAX_CHUNK_SIZE - 1);
+                    record.limit(start + 8 + record.getInt(start + 4));
+                    record.position(start);
+                    if (out.remaining() < record.remaining()) {
+                        flush(channel, out);
+                    }
+                    if (record.remaining() > out.capacity()) {
+                        writeFully(channel, record);
+                    } else {
+                        out.put(record);
+                    }
+                }
+                flush(channel, out);
+            }
+        }
+
+        private static void putInt(FileChannel channel, ByteBuffer out, int value) throws IOException {
+            if (out.remaining() < 4) {
+                flush(channel, out);
+            }
+            out.putInt(value);
+        }
+
+        private static void flush(FileChannel channel, ByteBuffer out) throws IOException {
+            out.flip();
+            writeFully(channel, out);
+            out.clear();
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        // References to records sorted by path, stable merge sort without boxing
+        private int[] sorted(ByteBuffer[] buffers) {
+            int[] order = Arrays.copyOf(refs, count);
+            int[] buffer = new int[count];
+            for (int width = 1; width < count; width *= 2) {
+                for (int low = 0; low < count; low += 2 * width) {
+                    int mid = Math.min(low + width, count);
+                    int high = Math.min(low + 2 * width, count);
+                    int i = low;
+                    int j = mid;
+                    int k = low;
+                    while (i < mid && j < high) {
+                        buffer[k++] = compare(buffers, order[j], order[i]) < 0 ? order[j++] : order[i++];
+                    }
+                    while (i < mid) {
+                        buffer[k++] = order[i++];
+                    }
+                    while (j < high) {
+                        buffer[k++] = order[j++];
+                    }
+                }
+                int[] swap = order;
+                order = buffer;
+                buffer = swap;
+            }
+            return order;
+        }
+
+        // Compares paths of records as unsigned bytes, like WalkIndex.compare, eight bytes at once
+        private static int compare(ByteBuffer[] buffers, int refA, int refB) {
+            ByteBuffer a = buffers[refA >>> OFFSET_BITS];
+            ByteBuffer b = buffers[refB >>> OFFSET_BITS];
+            int startA = (refA & (MAX_CHUNK_SIZE - 1)) + 8;
+            int startB = (refB & (MAX_CHUNK_SIZE - 1)) + 8;
+            int lengthA = a.getInt(startA - 4);
+            int lengthB = b.getInt(startB - 4);
+            int length = Math.min(lengthA, lengthB);
+            int i = 0;
+            for (; i + 8 <= length; i += 8) {
+                int diff = Long.compareUnsigned(a.getLong(startA + i), b.getLong(startB + i));
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            for (; i < length; i++) {
+                int diff = (a.get(startA + i) & 255) - (b.get(startB + i) & 255);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return Integer.compare(lengthA, lengthB);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || !(args[1].equals("hash") || args[1].equals("prefix"))) {
+            System.err.println("Run with <index file> hash <hex> or <index file> prefix <path> in args");
+            return;
+        }
+        try {
+            WalkIndex index = open(Paths.get(args[0]));
+            List<Entry> entries = args[1].equals("hash")
+                    ? index.findByHash(Integer.parseUnsignedInt(args[2], 16))
+                    : index.findByPrefix(args[2]);
+            for (Entry entry : entries) {
+                System.out.println(entry);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid hash \"" + args[2] + "\": " + e.getMessage());
+        } catch (InvalidPathException e) {
+            System.err.println("Problem with index file. Path not valid. \"" + args[0] + "\": " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Can't open index file \"" + args[0] + "\": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package ru.ifmo.ctddev.kopeliovich.walk;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Continuous mode of {@link RecursiveWalk}.
+ * Walks all trees from input once, then watches them and appends new hashes of created, modified
+ * and deleted files to output. The last line for a path is its actual hash.
+ * Events are collected into batches, so every file is hashed once per batch. Batch ends when there are
+ * no events for {@value #BATCH_DELAY_MS} ms, or {@value #MAX_BATCH_MS} ms after its first event.
+ */
+public class WatchingWalk {
+    private static final long BATCH_DELAY_MS = 200;
+    private static final long MAX_BATCH_MS = 2000;
+
+    private final WatchService watcher;
+    private final HashOutput output;
+    // Directories of walked trees, as they are named in output
+    private final Map<WatchKey, Path> treeKeys = new HashMap<>();
+    private final Set<Path> treeDirs = new HashSet<>();
+    // Parents of files listed in input directly, absolute
+    private final Map<WatchKey, Path> fileKeys = new HashMap<>();
+    // Absolute paths of files listed in input directly, to their names in output
+    private final Map<Path, Path> singleFiles = new HashMap<>();
+    private final List<Path> roots = new ArrayList<>();
+    // Directories created during current batch, they are walked as a whole
+    private final Set<Path> createdDirs = new HashSet<>();
+    // Directories deleted during current batch, they have no lines in output
+    private final Set<Path> deletedDirs = new HashSet<>();
+
+    private WatchingWalk(WatchService watcher, BufferedWriter output) {
+        this.watcher = watcher;
+        this.output = new HashOutput(output, null);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Run with --watch <input file> <output file> in args");
+            return;
+        }
+        try {
+            Path pathInput = Paths.get(args[0]);
+            Path pathOutput = Paths.get(args[1]);
+            try (WatchService watcher = FileSystems.getDefault().newWatchService();
+                 BufferedWriter output = Files.newBufferedWriter(pathOutput)) {
+                WatchingWalk walk = new WatchingWalk(watcher, output);
+                try (BufferedReader inputFile = Files.newBufferedReader(pathInput)) {
+                    String str;
+                    while ((str = inputFile.readLine()) != null) {
+                        walk.addRoot(str);
+                    }
+                }
+                walk.watch();
+            } catch (IOException e) {
+                System.err.println("Problem with input \"" + pathInput + "\" or output \"" + pathOutput + "\": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InvalidPathException e) {
+            System.err.println("Problem with input or output file. Path not valid: " + e.getMessage());
+        }
+    }
+
+    private void addRoot(String str) throws IOException {
+        try {
+            Path path = Paths.get(str);
+            try {
+                if (Files.isDirectory(path)) {
+                    registerTree(path);
+                } else {
+                    Path absolute = path.toAbsolutePath();
+                    Path parent = absolute.getParent();
+                    if (parent != null && Files.isDirectory(parent)) {
+                        fileKeys.put(parent.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), parent);
+                        singleFiles.put(absolute, path);
+                    }
+                }
+                roots.add(path);
+                RecursiveWalk.processPath(path, output);
+            } catch (IOException e) {
+                RecursiveWalk.outputHashInformation(RecursiveWalk.ERROR_HASH, path.toString(), output);
+                System.err.println("Problem with file from input \"" + path + "\": " + e.getMessage());
+            }
+        } catch (InvalidPathException e) {
+            RecursiveWalk.outputHashInformation(RecursiveWalk.ERROR_HASH, str, output);
+            System.err.println("Invalid path for file or dir in input \"" + str + "\": " + e.getMessage());
+        }
+    }
+
+    // Directories which can't be registered, e.g. deleted right after creation, are skipped
+    private void registerTree(Path root) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    try {
+                        treeKeys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                        treeDirs.add(dir);
+                        return FileVisitResult.CONTINUE;
+                    } catch (IOException e) {
+                        System.err.println("Can't watch directory \"" + dir + "\": " + e.getMessage());
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Can't watch directory \"" + root + "\": " + e.getMessage());
+        }
+    }
+
+    private void watch() throws InterruptedException, IOException {
+        output.flush();
+        while (!treeKeys.isEmpty() || !fileKeys.isEmpty()) {
+            Set<Path> changed = new LinkedHashSet<>();
+            boolean overflow = false;
+            WatchKey key = watcher.take();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_MS);
+            while (key != null) {
+                overflow |= collect(key, changed);
+                long left = deadline - System.nanoTime();
+                key = left > 0
+                        ? watcher.poll(Math.min(left, TimeUnit.MILLISECONDS.toNanos(BATCH_DELAY_MS)), TimeUnit.NANOSECONDS)
+                        : null;
+            }
+            if (overflow) {
+                for (Path root : roots) {
+                    registerTree(root);
+                    rescan(root);
+                }
+            } else {
+                for (Path path : changed) {
+                    processChanged(path);
+                }
+            }
+            createdDirs.clear();
+            deletedDirs.clear();
+            output.flush();
+        }
+    }
+
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        Path treeDir = treeKeys.get(key);
+        Path fileDir = fileKeys.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (treeDir != null) {
+                Path child = treeDir.resolve(name);
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                    registerTree(child);
+                    createdDirs.add(child);
+                } else if (event.kind() == ENTRY_DELETE && treeDirs.contains(child)) {
+                    treeDirs.removeIf(d -> d.startsWith(child));
+                    deletedDirs.add(child);
+                }
+                changed.add(child);
+            }
+            if (fileDir != null) {
+                Path child = singleFiles.get(fileDir.resolve(name));
+                if (child != null) {
+                    changed.add(child);
+                }
+            }
+        }
+        if (!key.reset()) {
+            treeKeys.remove(key);
+            fileKeys.remove(key);
+        }
+        return overflow;
+    }
+
+    private boolean insideCreated(Path path) {
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (createdDirs.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rescan(Path root) {
+        try {
+            RecursiveWalk.processPath(root, output);
+        } catch (IOException e) {
+            System.err.println("Problem with rescan of \"" + root + "\": " + e.getMessage());
+        }
+    }
+
+    private void processChanged(Path path) {
+        try {
+            if (Files.isDirectory(path)) {
+                // Directory inside another created one is walked with it
+                if (createdDirs.contains(path) && !insideCreated(path)) {
+                    RecursiveWalk.processPath(path, output);
+                }
+            } else if (!insideCreated(path) && (Files.exists(path) || !deletedDirs.contains(path))) {
+                RecursiveWalk.outputHashInformation(RecursiveWalk.fileFNV(path), path.toString(), output);
+            }
+        } catch (IOException e) {
+            System.err.println("Problem with changed file \"" + path + "\": " + e.getMessage());
+        }
+    }
+}